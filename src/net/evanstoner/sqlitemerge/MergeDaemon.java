@@ -0,0 +1,261 @@
+package net.evanstoner.sqlitemerge;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches a spool directory for merge jobs and runs them in one long-lived JVM, so the driver, the parsed
+ * configs and the JIT stay warm between jobs.
+ *
+ * A job is a properties file named "name.job" with the keys primary, secondary and config, and optionally
+ * output (defaults to "name.db" in the spool directory). While it runs the file is renamed to
+ * "name.job.running", and afterwards to "name.job.done" or "name.job.failed". The merge log goes to
+ * "name.log". Creating a file named "stop" in the spool directory shuts the daemon down once the running
+ * jobs have finished.
+ */
+
+public class MergeDaemon {
+    static final String JOB_SUFFIX = ".job";
+    static final long POLL_MILLIS = 200;
+
+    File spoolDir;
+    int threads;
+    ExecutorService executor;
+
+    // limits the number of claimed jobs, so the rest of the backlog stays on disk
+    Semaphore slots;
+
+    // parsed configs, keyed by canonical path
+    HashMap<String, CachedConfig> configs = new HashMap<String, CachedConfig>();
+
+    // statistics, guarded by this
+    long startTime;
+    int jobsDone = 0;
+    int jobsFailed = 0;
+    long totalLatency = 0;
+    long maxLatency = 0;
+
+    public MergeDaemon(File spoolDir, int threads) {
+        this.spoolDir = spoolDir;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Run jobs until a stop file appears in the spool directory.
+     * @throws ClassNotFoundException
+     * @throws InterruptedException
+     */
+    public void run() throws ClassNotFoundException, InterruptedException {
+        // load the driver once, rather than once per job
+        Class.forName("org.sqlite.JDBC");
+
+        if (!spoolDir.isDirectory()) {
+            System.err.println("FATAL: Spool directory does not exist: " + spoolDir);
+            return;
+        }
+
+        executor = Executors.newFixedThreadPool(threads);
+        slots = new Semaphore(threads * 2);
+        startTime = System.currentTimeMillis();
+        System.out.println("Watching " + spoolDir.getAbsolutePath() + " with " + threads + " threads");
+
+        File stopFile = new File(spoolDir, "stop");
+        try {
+            while (!stopFile.exists()) {
+                boolean claimedAny = false;
+                for (File jobFile : pendingJobs()) {
+                    if (!slots.tryAcquire()) {
+                        break;
+                    }
+                    final File running = new File(jobFile.getPath() + ".running");
+                    if (!jobFile.renameTo(running)) {
+                        // someone else claimed it first
+                        slots.release();
+                        continue;
+                    }
+                    claimedAny = true;
+                    final long queuedAt = System.currentTimeMillis();
+                    executor.execute(new Runnable() {
+                        public void run() {
+                            try {
+                                runJob(running, queuedAt);
+                            } finally {
+                                slots.release();
+                            }
+                        }
+                    });
+                }
+                if (!claimedAny) {
+                    Thread.sleep(POLL_MILLIS);
+                }
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            stopFile.delete();
+            synchronized (this) {
+                System.out.println("Stopped. " + statistics());
+            }
+        }
+    }
+
+    /**
+     * @return The unclaimed job files, oldest name first.
+     */
+    File[] pendingJobs() {
+        File[] jobs = spoolDir.listFiles();
+        if (jobs == null) {
+            return new File[0];
+        }
+        ArrayList<File> pending = new ArrayList<File>();
+        for (File f : jobs) {
+            if (f.isFile() && f.getName().endsWith(JOB_SUFFIX)) {
+                pending.add(f);
+            }
+        }
+        File[] sorted = pending.toArray(new File[pending.size()]);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * Run a claimed job and rename it according to the outcome.
+     * @param running The claimed job file.
+     * @param queuedAt When the job was claimed, for measuring latency.
+     */
+    void runJob(File running, long queuedAt) {
+        String jobName = running.getName().substring(0, running.getName().length() - (JOB_SUFFIX + ".running").length());
+        File logFile = new File(spoolDir, jobName + ".log");
+        boolean succeeded = false;
+
+        PrintStream log = null;
+        try {
+            log = new PrintStream(new FileOutputStream(logFile));
+
+            Properties job = new Properties();
+            InputStream in = new FileInputStream(running);
+            try {
+                job.load(in);
+            } finally {
+                in.close();
+            }
+
+            String primary = job.getProperty("primary");
+            String secondary = job.getProperty("secondary");
+            String config = job.getProperty("config");
+            if (primary == null || secondary == null || config == null) {
+                log.println("FATAL: A job needs primary, secondary and config");
+            } else {
+                ArrayList<Table> tables = getConfig(new File(config));
+                if (tables == null) {
+                    log.println("FATAL: Bad config: " + config);
+                } else {
+                    File output = new File(job.getProperty("output", new File(spoolDir, jobName + ".db").getPath()));
+                    SqliteMerge merge = new SqliteMerge(new File(primary), new File(secondary), output, tables);
+                    merge.out = log;
+                    merge.run();
+                    log.println("\nAll done, with no errors!");
+                    succeeded = true;
+                }
+            }
+        } catch (Exception e) {
+            if (log != null) {
+                log.println("FATAL: " + e);
+            }
+        } finally {
+            // even an Error must not leave the job claimed forever or uncounted
+            if (log != null) {
+                log.close();
+            }
+
+            running.renameTo(new File(spoolDir, jobName + JOB_SUFFIX + (succeeded ? ".done" : ".failed")));
+
+            long latency = System.currentTimeMillis() - queuedAt;
+            synchronized (this) {
+                if (succeeded) {
+                    jobsDone++;
+                } else {
+                    jobsFailed++;
+                }
+                totalLatency += latency;
+                maxLatency = Math.max(maxLatency, latency);
+
+                // written under the same lock, so an older line can't overwrite a newer one
+                String stats = statistics();
+                System.out.println(jobName + (succeeded ? " done" : " FAILED") + " in " + latency + " ms. " + stats);
+                writeStatistics(stats);
+            }
+        }
+    }
+
+    /**
+     * Get the parsed config, reading it again only if the file has changed.
+     * @param configFile The config file.
+     * @return The tables, or null if the config is bad.
+     * @throws IOException
+     */
+    ArrayList<Table> getConfig(File configFile) throws IOException {
+        String path = configFile.getCanonicalPath();
+        long modified = configFile.lastModified();
+        synchronized (configs) {
+            CachedConfig cached = configs.get(path);
+            if (cached != null && cached.modified == modified) {
+                return cached.tables;
+            }
+        }
+
+        ArrayList<Table> tables = SqliteMerge.readConfig(configFile);
+        if (tables != null) {
+            synchronized (configs) {
+                configs.put(path, new CachedConfig(modified, tables));
+            }
+        }
+        return tables;
+    }
+
+    /**
+     * @return A one-line summary of job counts, latency and throughput. Call while holding this.
+     */
+    String statistics() {
+        int jobs = jobsDone + jobsFailed;
+        double minutes = Math.max(1, System.currentTimeMillis() - startTime) / 60000.0;
+        return String.format("jobs=%d failed=%d mean_latency_ms=%d max_latency_ms=%d throughput_per_min=%.1f",
+                jobs, jobsFailed, jobs == 0 ? 0 : totalLatency / jobs, maxLatency, jobs / minutes);
+    }
+
+    /**
+     * Write the statistics to "daemon.stats" in the spool directory, for monitoring. Call while holding this.
+     * @param stats The statistics line.
+     */
+    void writeStatistics(String stats) {
+        try {
+            PrintStream statsOut = new PrintStream(new FileOutputStream(new File(spoolDir, "daemon.stats")));
+            statsOut.println(stats);
+            statsOut.close();
+        } catch (IOException e) {
+            System.err.println("WARNING: Couldn't write statistics: " + e.getMessage());
+        }
+    }
+
+    private static class CachedConfig {
+        public long modified;
+        public ArrayList<Table> tables;
+
+        public CachedConfig(long modified, ArrayList<Table> tables) {
+            this.modified = modified;
+            this.tables = tables;
+        }
+    }
+}
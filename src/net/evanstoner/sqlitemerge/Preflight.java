@@ -0,0 +1,253 @@
+package net.evanstoner.sqlitemerge;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Checks a config against both databases before a long merge. Every statement the merge would run for a
+ * table is put through EXPLAIN QUERY PLAN, statements that would scan a table once per record are flagged,
+ * and the runtime is estimated from the table sizes. Nothing is written.
+ */
+
+public class Preflight {
+    // a rough cost of visiting one row, for turning row visits into time
+    static final double NANOS_PER_ROW_VISIT = 200;
+
+    File primaryFile;
+    File secondaryFile;
+    ArrayList<Table> tables;
+    Connection targetConnection = null;
+    Connection secondaryConnection = null;
+    PrintStream out = System.out;
+
+    // row counts, keyed by table, so each table is only counted once
+    HashMap<String, Long> targetRows = new HashMap<String, Long>();
+    HashMap<String, Long> secondaryRows = new HashMap<String, Long>();
+
+    int flagged = 0;
+
+    /**
+     * @param primaryFile The primary database, which stands in for the target. It is opened read-only.
+     * @param secondaryFile The secondary database. It is opened read-only.
+     * @param tables The parsed config.
+     */
+    public Preflight(File primaryFile, File secondaryFile, ArrayList<Table> tables) {
+        this.primaryFile = primaryFile;
+        this.secondaryFile = secondaryFile;
+        this.tables = tables;
+    }
+
+    /**
+     * Explain every table's statements and print the estimates.
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     */
+    public void run() throws ClassNotFoundException, SQLException {
+        Class.forName("org.sqlite.JDBC");
+        targetConnection = SqliteMerge.openReadOnly(primaryFile);
+        try {
+            secondaryConnection = SqliteMerge.openReadOnly(secondaryFile);
+
+            double totalVisits = 0;
+            for (Table t : tables) {
+                out.println("\n" + t.name + ":");
+
+                if (t.gidUpdates.size() + t.localUpdates.size() == 0) {
+                    out.println("Skipping this table (no updates required)");
+                    continue;
+                }
+
+                try {
+                    totalVisits += checkTable(t);
+                } catch (SQLException e) {
+                    out.println("!! Couldn't plan this table: " + e.getMessage());
+                    flagged++;
+                }
+            }
+
+            out.println();
+            out.println(flagged + " statement(s) scan a table for every record or fail");
+            out.println("Estimated runtime: " + formatDuration(totalVisits));
+        } finally {
+            targetConnection.close();
+            if (secondaryConnection != null) {
+                secondaryConnection.close();
+            }
+        }
+    }
+
+    /**
+     * Explain the statements for one table.
+     * @param t The table being processed.
+     * @return The estimated number of row visits for the table.
+     * @throws SQLException
+     */
+    double checkTable(Table t) throws SQLException {
+        TablePlan plan = TablePlan.choose(targetConnection, secondaryConnection, t);
+        for (String warning : plan.warnings) {
+            out.println("WARNING: " + warning);
+        }
+        out.println("Plan: " + plan);
+
+        // reuse the counts the plan already took
+        secondaryRows.put(t.name, plan.secondaryRows);
+        if (plan.targetRows >= 0) {
+            targetRows.put(t.name, plan.targetRows);
+        }
+
+        long records = countRows(secondaryRows, secondaryConnection, t.name);
+        double visits = 0;
+
+        // read once per table, or once per range and then again in rowid order when partitioned; the ranges
+        // and the matches are divided by the partitions, since they run in parallel
+        if (plan.partitions > 1) {
+            visits += explain("Read secondary range", SqliteMerge.partitionQuery(t).toString(),
+                    secondaryConnection, secondaryRows, false, plan.partitions) / plan.partitions;
+            visits += explain("Read secondary records in rowid order", SqliteMerge.secondaryQueryByRowid(t).toString(),
+                    secondaryConnection, secondaryRows, false, 1);
+        } else {
+            visits += explain("Read secondary records", SqliteMerge.secondaryQuery(t).toString(),
+                    secondaryConnection, secondaryRows, false, 1);
+        }
+
+        if (plan.match.equals(TablePlan.MATCH_HASH)) {
+            visits += explain("Hash target GIDs", SqliteMerge.hashQuery(t).toString(),
+                    targetConnection, targetRows, false, 1);
+        } else {
+            visits += explain("Find match", SqliteMerge.matchQuery(t).toString(),
+                    targetConnection, targetRows, true, records) / plan.partitions;
+        }
+
+        // at worst, every record matches
+        visits += explain("Look up match", SqliteMerge.matchDetailsQuery(t).toString(),
+                targetConnection, targetRows, true, records);
+        for (Reference dependent : t.dependents) {
+            visits += explain("Delete dependents in " + dependent.table, SqliteMerge.deleteDependentQuery(dependent).toString(),
+                    targetConnection, targetRows, true, records);
+        }
+
+        out.println("Estimated: " + formatDuration(visits));
+        return visits;
+    }
+
+    /**
+     * Explain one statement and estimate its cost.
+     * @param label What the statement is for.
+     * @param sql The statement, exactly as the merge builds it.
+     * @param c The connection the merge would run it on.
+     * @param rowCounts The row count cache for that connection.
+     * @param perRecord True if the statement runs once per secondary record.
+     * @param executions How many times the statement runs.
+     * @return The estimated number of row visits over all executions, or 0 if the statement is invalid.
+     * @throws SQLException
+     */
+    double explain(String label, String sql, Connection c, HashMap<String, Long> rowCounts, boolean perRecord,
+                   long executions) throws SQLException {
+        String prefix = "   ";
+        String line = label + (perRecord ? " (per record)" : "") + ": " + sql.replaceAll("\\s+", " ").trim();
+
+        ArrayList<String> details = new ArrayList<String>();
+        try {
+            Statement stmt = c.createStatement();
+            try {
+                ResultSet rs = stmt.executeQuery("EXPLAIN QUERY PLAN " + sql);
+                while (rs.next()) {
+                    details.add(rs.getString("detail"));
+                }
+            } finally {
+                stmt.close();
+            }
+        } catch (SQLException e) {
+            // the merge would fail on this statement, e.g. a table with no global identifiers
+            prefix = "!! ";
+            out.println(prefix + line);
+            out.println(prefix + "   " + e.getMessage());
+            flagged++;
+            return 0;
+        }
+
+        // a statement that runs once may scan its first table; anything else that scans is a nested loop
+        double cost = TablePlan.ROW_QUERY_OVERHEAD;
+        boolean scans = false;
+        boolean outerLoop = true;
+        for (String detail : details) {
+            String table = planTable(detail);
+            if (table == null) {
+                continue;
+            }
+            long rows = countRows(rowCounts, c, table);
+            if (detail.startsWith("SCAN") || detail.contains("AUTOMATIC")) {
+                cost += rows;
+                if (perRecord || !outerLoop) {
+                    scans = true;
+                }
+            } else if (detail.contains(">") || detail.contains("<")) {
+                // a range search, like a partition's rowids; together the executions read about the whole table
+                cost += (double) rows / executions;
+            } else {
+                cost += TablePlan.log2(rows + 1) + 1;
+            }
+            outerLoop = false;
+        }
+
+        double visits = cost * executions;
+        if (scans) {
+            prefix = "!! ";
+        }
+        out.println(prefix + line);
+        for (String detail : details) {
+            out.println(prefix + "   " + detail);
+        }
+        out.println(prefix + "   ~" + Math.round(cost) + " rows x " + executions);
+        if (scans) {
+            flagged++;
+        }
+        return visits;
+    }
+
+    /**
+     * Get the table a line of EXPLAIN QUERY PLAN reads from, in either the old "SCAN TABLE x" form or the
+     * newer "SCAN x" form.
+     * @param detail The detail column.
+     * @return The table name, or null if the line doesn't read a table.
+     */
+    static String planTable(String detail) {
+        String[] words = detail.split(" ");
+        if (words.length < 2 || !(words[0].equals("SCAN") || words[0].equals("SEARCH"))) {
+            return null;
+        }
+        int i = 1;
+        if (words[i].equals("TABLE") && words.length > 2) {
+            i++;
+        }
+        if (words[i].equals("CONSTANT") || words[i].startsWith("SUBQUERY")) {
+            return null;
+        }
+        return words[i];
+    }
+
+    long countRows(HashMap<String, Long> rowCounts, Connection c, String table) throws SQLException {
+        Long rows = rowCounts.get(table);
+        if (rows == null) {
+            rows = TablePlan.countRows(c, table);
+            rowCounts.put(table, rows);
+        }
+        return rows;
+    }
+
+    static String formatDuration(double visits) {
+        double seconds = visits * NANOS_PER_ROW_VISIT / 1e9;
+        if (seconds < 60) {
+            return String.format("%.0f row visits, about %.1f s", visits, seconds);
+        } else if (seconds < 3600) {
+            return String.format("%.0f row visits, about %.1f min", visits, seconds / 60);
+        }
+        return String.format("%.0f row visits, about %.1f h", visits, seconds / 3600);
+    }
+}
@@ -2,12 +2,18 @@ package net.evanstoner.sqlitemerge;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.math.BigInteger;
 import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.sql.*;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  * Author: Evan Stoner <evanstoner.net>
@@ -16,69 +22,165 @@ import java.util.Set;
 
 public class SqliteMerge {
 
-    static ArrayList<Table> tables = new ArrayList<Table>();
-    static HashMap<String, HashMap<String, String>> keyMap = new HashMap<String, HashMap<String, String>>();
-    static File targetFile;
-    static File secondaryFile;
-    static Connection targetConnection = null;
-    static Connection secondaryConnection = null;
+    ArrayList<Table> tables;
+    HashMap<String, HashMap<String, String>> keyMap = new HashMap<String, HashMap<String, String>>();
+    File primaryFile;
+    File targetFile;
+    File secondaryFile;
+    Connection targetConnection = null;
+    Connection secondaryConnection = null;
+
+    // the alias of the secondary rowid when records are matched in partitions
+    static final String MERGE_ROWID = "merge_rowid";
+
+    // where progress is reported; the daemon gives each job its own log
+    PrintStream out = System.out;
+
+    // statements on the target connection, keyed by SQL, so each one is only compiled once per merge
+    HashMap<String, PreparedStatement> targetStatements = new HashMap<String, PreparedStatement>();
 
     public static void main(String[] args) throws IOException, SQLException {
+        if (args.length >= 2 && args[0].equals("--daemon")) {
+            int threads = Runtime.getRuntime().availableProcessors();
+            if (args.length > 2) {
+                try {
+                    threads = Integer.parseInt(args[2]);
+                } catch (NumberFormatException e) {
+                    threads = 0;
+                }
+                if (threads < 1) {
+                    printUsage();
+                    return;
+                }
+            }
+            try {
+                new MergeDaemon(new File(args[1]), threads).run();
+            } catch (ClassNotFoundException e) {
+                System.err.println("FATAL: Couldn't load the SQLite driver: " + e.getMessage());
+            } catch (InterruptedException e) {
+                System.err.println("FATAL: Interrupted: " + e.getMessage());
+            }
+            return;
+        }
+
+        if (args.length == 4 && args[0].equals("--preflight")) {
+            ArrayList<Table> tables = readConfig(new File(args[3]));
+            if (tables == null) {
+                return;
+            }
+            try {
+                new Preflight(new File(args[1]), new File(args[2]), tables).run();
+            } catch (ClassNotFoundException e) {
+                System.err.println("FATAL: Couldn't open databases: " + e.getMessage());
+            }
+            return;
+        }
+
         if (args.length != 3) {
-            System.err.println("usage: SqliteMerge <primary_db> <secondary_db> <config_file>");
+            printUsage();
             return;
         }
 
-        // get files and create a copy of primary to serve as the merged file
-        File primaryFile = new File(args[0]);
-        secondaryFile = new File(args[1]);
-        targetFile = new File("merged.db");
+        ArrayList<Table> tables = readConfig(new File(args[2]));
+        if (tables == null) {
+            return;
+        }
 
-        if (targetFile.exists()) {
-            targetFile.delete();
+        SqliteMerge merge = new SqliteMerge(new File(args[0]), new File(args[1]), new File("merged.db"), tables);
+        try {
+            merge.run();
+            System.out.println("\nAll done, with no errors!");
+        } catch (ClassNotFoundException e) {
+            System.err.println("FATAL: Couldn't open databases: " + e.getMessage());
         }
-        Files.copy(primaryFile.toPath(), targetFile.toPath());
+    }
+
+    static void printUsage() {
+        System.err.println("usage: SqliteMerge <primary_db> <secondary_db> <config_file>");
+        System.err.println("       SqliteMerge --preflight <primary_db> <secondary_db> <config_file>");
+        System.err.println("       SqliteMerge --daemon <spool_dir> [threads]");
+    }
+
+    /**
+     * Creates a merge of two databases. Nothing is touched until run() is called.
+     * @param primaryFile The primary database, which is copied to become the target.
+     * @param secondaryFile The database whose records are merged into the target.
+     * @param targetFile Where the merged database is written. Replaced if it exists.
+     * @param tables The parsed config. It is only read, so it may be shared between merges.
+     */
+    public SqliteMerge(File primaryFile, File secondaryFile, File targetFile, ArrayList<Table> tables) {
+        this.primaryFile = primaryFile;
+        this.secondaryFile = secondaryFile;
+        this.targetFile = targetFile;
+        this.tables = tables;
+
+        for (Table t : tables) {
+            //System.out.println(t);
+            keyMap.put(t.name, new HashMap<String, String>());
+        }
+    }
+
+    /**
+     * Reads a config file and splits it into tables.
+     * @param configFile The config file.
+     * @return The tables, in the order they should be merged, or null if an entry is bad.
+     * @throws IOException
+     */
+    public static ArrayList<Table> readConfig(File configFile) throws IOException {
+        ArrayList<Table> tables = new ArrayList<Table>();
 
         // read the config file and split it on periods followed by whitespace
-        String config = new String(Files.readAllBytes(Paths.get(args[2])));
+        String config = new String(Files.readAllBytes(configFile.toPath()));
         config = config.replaceAll("\\#[\\S ]*", "");
         String[] configEntries = config.split("\\.\\s");
         for (String entry : configEntries) {
             Table t = new Table(entry);
             if (t.name == null) {
-                return;
+                return null;
             }
-            tables.add(new Table(entry));
+            tables.add(t);
         }
 
-        for (Table t : tables) {
-            //System.out.println(t);
-            keyMap.put(t.name, new HashMap<String, String>());
-        }
+        return tables;
+    }
 
-        try {
-            openConnections();
-        } catch (ClassNotFoundException e) {
-            System.err.println("FATAL: Couldn't open databases: " + e.getMessage());
-            return;
+    /**
+     * Copy the primary database to the target and merge the secondary database into it.
+     * @throws IOException
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     */
+    public void run() throws IOException, ClassNotFoundException, SQLException {
+        // create a copy of primary to serve as the merged file
+        if (targetFile.exists()) {
+            targetFile.delete();
         }
+        Files.copy(primaryFile.toPath(), targetFile.toPath());
 
-
+        openConnections();
         try {
             mergeDatabases();
-            System.out.println("\nAll done, with no errors!");
         } finally {
             closeConnections();
         }
     }
 
-    public static void openConnections() throws IOException, ClassNotFoundException, SQLException {
+    public void openConnections() throws IOException, ClassNotFoundException, SQLException {
         Class.forName("org.sqlite.JDBC");
         targetConnection = DriverManager.getConnection("jdbc:sqlite:" + targetFile.getAbsolutePath());
         secondaryConnection = DriverManager.getConnection("jdbc:sqlite:" + secondaryFile.getAbsolutePath());
     }
 
-    public static void closeConnections() {
+    public void closeConnections() {
+        for (PreparedStatement stmt : targetStatements.values()) {
+            try {
+                stmt.close();
+            } catch (SQLException e) {
+                // do nothing
+            }
+        }
+        targetStatements.clear();
+
         try {
             if (targetConnection != null) {
                 targetConnection.close();
@@ -96,18 +198,40 @@ public class SqliteMerge {
         }
     }
 
+    /**
+     * Get a prepared statement on the target connection, reusing it if the same SQL was prepared before.
+     * Executing the statement again closes the result set it returned last time.
+     * @param sql The statement to prepare.
+     * @param autoGeneratedKeys Either Statement.RETURN_GENERATED_KEYS or Statement.NO_GENERATED_KEYS.
+     * @return The prepared statement.
+     * @throws SQLException
+     */
+    PreparedStatement prepareTarget(String sql, int autoGeneratedKeys) throws SQLException {
+        String cacheKey = autoGeneratedKeys + ":" + sql;
+        PreparedStatement stmt = targetStatements.get(cacheKey);
+        if (stmt == null) {
+            stmt = targetConnection.prepareStatement(sql, autoGeneratedKeys);
+            targetStatements.put(cacheKey, stmt);
+        }
+        return stmt;
+    }
+
+    PreparedStatement prepareTarget(String sql) throws SQLException {
+        return prepareTarget(sql, Statement.NO_GENERATED_KEYS);
+    }
+
     /**
      * Merge the target and secondary databases.
      * @throws SQLException
      */
-    public static void mergeDatabases() throws SQLException {
+    public void mergeDatabases() throws SQLException {
         Statement targetStatement = targetConnection.createStatement();
 
         for (Table t : tables) {
-            System.out.println("\n" + t.name + ":");
+            out.println("\n" + t.name + ":");
 
             if (t.gidUpdates.size() + t.localUpdates.size() == 0) {
-                System.out.println("Skipping this table (no updates required)");
+                out.println("Skipping this table (no updates required)");
                 continue;
             }
 
@@ -115,7 +239,19 @@ public class SqliteMerge {
             For each record, look for a match in the target database. If one is found, update it. Otherwise, insert a new record.
              */
 
-            ResultSet rsSecondaryRecords = querySecondaryTable(t);
+            TablePlan plan = TablePlan.choose(targetConnection, secondaryConnection, t);
+            for (String warning : plan.warnings) {
+                out.println("WARNING: " + warning);
+            }
+            out.println("Plan: " + plan);
+
+            // match rowid ranges in parallel up front; the records are then applied in rowid order
+            HashMap<Long, String> partitionMatches = null;
+            if (plan.partitions > 1) {
+                partitionMatches = matchPartitions(t, plan.partitions);
+            }
+
+            ResultSet rsSecondaryRecords = partitionMatches == null ? querySecondaryTable(t) : querySecondaryTableByRowid(t);
 
             int newSkey = 1;
             ResultSet rsNewSkey = targetStatement.executeQuery("SELECT MAX(" + t.skey + ") FROM " + t.name);
@@ -123,14 +259,54 @@ public class SqliteMerge {
                 newSkey = rsNewSkey.getInt(1) + 1;
             }
 
-            while (rsSecondaryRecords.next()) {
-                String matchedKey = findMatch(rsSecondaryRecords, t);
-                if (matchedKey == null) {
-                    System.out.println("No match: " + rsSecondaryRecords.getInt(t.skey));
-                    insertRecord(rsSecondaryRecords, newSkey++, t);
-                } else {
-                    System.out.println("Found match: " + rsSecondaryRecords.getInt(t.skey) + " -> " + matchedKey);
-                    updateRecord(rsSecondaryRecords, matchedKey, t);
+            HashMap<String, String> targetGids = null;
+            if (plan.match.equals(TablePlan.MATCH_HASH)) {
+                targetGids = hashTargetGids(t);
+            }
+
+            // the partitions only saw the target as it was, before this table inserted anything
+            boolean inserted = false;
+
+            if (plan.write.equals(TablePlan.WRITE_TRANSACTION)) {
+                targetConnection.setAutoCommit(false);
+            }
+            try {
+                while (rsSecondaryRecords.next()) {
+                    String matchedKey;
+                    if (partitionMatches != null) {
+                        matchedKey = partitionMatches.get(rsSecondaryRecords.getLong(MERGE_ROWID));
+                        if (matchedKey == null && inserted) {
+                            // it may match a record created since, so ask the live target, as a sequential run would
+                            matchedKey = findMatch(rsSecondaryRecords, t);
+                        }
+                    } else if (targetGids == null) {
+                        matchedKey = findMatch(rsSecondaryRecords, t);
+                    } else {
+                        matchedKey = targetGids.get(gidKey(rsSecondaryRecords, t));
+                    }
+
+                    if (matchedKey == null) {
+                        out.println("No match: " + rsSecondaryRecords.getInt(t.skey));
+                        int insertedSkey = newSkey++;
+                        insertRecord(rsSecondaryRecords, insertedSkey, t);
+                        inserted = true;
+                        if (targetGids != null) {
+                            // later records may match the one we just created, as they would with a query; like
+                            // findMatch, store its pseudokey, which is only the rowid for an INTEGER PRIMARY KEY
+                            String gidKey = gidKey(rsSecondaryRecords, t);
+                            if (gidKey != null && !targetGids.containsKey(gidKey)) {
+                                targetGids.put(gidKey, String.valueOf(insertedSkey));
+                            }
+                        }
+                    } else {
+                        out.println("Found match: " + rsSecondaryRecords.getInt(t.skey) + " -> " + matchedKey);
+                        updateRecord(rsSecondaryRecords, matchedKey, t);
+                    }
+                }
+            } finally {
+                if (!targetConnection.getAutoCommit()) {
+                    // commits whatever was written, as autocommit would have
+                    targetConnection.setAutoCommit(true);
                 }
             }
         }
@@ -142,9 +318,52 @@ public class SqliteMerge {
      * @return The records from the secondary database.
      * @throws SQLException
      */
-    public static ResultSet querySecondaryTable(Table t) throws SQLException {
+    public ResultSet querySecondaryTable(Table t) throws SQLException {
         Statement secondaryStatement = secondaryConnection.createStatement();
+        return secondaryStatement.executeQuery(secondaryQuery(t).toString());
+    }
 
+    /**
+     * Get the same records as querySecondaryTable, with their rowids, in rowid order.
+     * @param t The table being processed.
+     * @return The records from the secondary database.
+     * @throws SQLException
+     */
+    public ResultSet querySecondaryTableByRowid(Table t) throws SQLException {
+        Statement secondaryStatement = secondaryConnection.createStatement();
+        return secondaryStatement.executeQuery(secondaryQueryByRowid(t).toString());
+    }
+
+    /**
+     * Build the query for the same records as secondaryQuery, with their rowids, in rowid order.
+     * @param t The table being processed.
+     * @return The query.
+     */
+    static SimpleQuery secondaryQueryByRowid(Table t) {
+        SimpleQuery sqSecondaryRecords = secondaryQuery(t);
+        sqSecondaryRecords.select += ", " + t.name + ".rowid AS " + MERGE_ROWID;
+        sqSecondaryRecords.orderBy = "ORDER BY " + t.name + ".rowid";
+        return sqSecondaryRecords;
+    }
+
+    /**
+     * Build the query for one rowid range of the secondary records, with their rowids.
+     * @param t The table being processed.
+     * @return The query, with the first and last rowid of the range as its parameters.
+     */
+    static SimpleQuery partitionQuery(Table t) {
+        SimpleQuery sqPartition = secondaryQuery(t);
+        sqPartition.select += ", " + t.name + ".rowid AS " + MERGE_ROWID;
+        sqPartition.where = "WHERE " + t.name + ".rowid BETWEEN ? AND ?";
+        return sqPartition;
+    }
+
+    /**
+     * Build the query for all the fields in the secondary database, plus the foreign fields.
+     * @param t The table being processed.
+     * @return The query.
+     */
+    static SimpleQuery secondaryQuery(Table t) {
         // the rowid is not selected with *
         String selectFields = t.skey == "rowid" ? t.name + "." + t.skey + ", *" : "*";
         selectFields = selectFields.replace("*", t.name + ".*"); // unambiguate
@@ -168,7 +387,81 @@ public class SqliteMerge {
             }
         }
 
-        return secondaryStatement.executeQuery(sqSecondaryRecords.toString());
+        return sqSecondaryRecords;
+    }
+
+    /**
+     * Split the secondary table into rowid ranges and find the matches for each range in parallel, each on
+     * its own read-only connections. Nothing is written, so the result is the same as matching in order
+     * against the target as it is now.
+     * @param t The table being processed.
+     * @param partitions How many ranges to split the table into.
+     * @return The matched target key for each secondary rowid that has a match.
+     * @throws SQLException
+     */
+    public HashMap<Long, String> matchPartitions(Table t, int partitions) throws SQLException {
+        HashMap<Long, String> matches = new HashMap<Long, String>();
+
+        long minRowid;
+        long maxRowid;
+        Statement secondaryStatement = secondaryConnection.createStatement();
+        try {
+            ResultSet rsRange = secondaryStatement.executeQuery("SELECT MIN(rowid), MAX(rowid) FROM " + t.name);
+            rsRange.next();
+            minRowid = rsRange.getLong(1);
+            maxRowid = rsRange.getLong(2);
+            if (rsRange.wasNull()) {
+                // the table is empty
+                return matches;
+            }
+        } finally {
+            secondaryStatement.close();
+        }
+
+        // rowids can span the whole range of a long, so the bounds are computed without overflowing
+        BigInteger min = BigInteger.valueOf(minRowid);
+        BigInteger count = BigInteger.valueOf(maxRowid).subtract(min).add(BigInteger.ONE);
+        BigInteger n = BigInteger.valueOf(partitions);
+        ArrayList<PartitionMatch> tasks = new ArrayList<PartitionMatch>();
+        for (int i = 0; i < partitions; i++) {
+            long first = min.add(count.multiply(BigInteger.valueOf(i)).divide(n)).longValue();
+            long last = min.add(count.multiply(BigInteger.valueOf(i + 1)).divide(n)).subtract(BigInteger.ONE).longValue();
+            if (first <= last) {
+                tasks.add(new PartitionMatch(t, first, last));
+            }
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(partitions);
+        try {
+            for (Future<HashMap<Long, String>> result : pool.invokeAll(tasks)) {
+                matches.putAll(result.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while matching " + t.name, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            throw new SQLException("Couldn't match " + t.name, e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+
+        out.println("Matched " + matches.size() + " records in " + tasks.size() + " partitions");
+        return matches;
+    }
+
+    /**
+     * Open a read-only connection, so partitions can't take write locks on the target.
+     * @param file The database.
+     * @return The connection.
+     * @throws SQLException
+     */
+    static Connection openReadOnly(File file) throws SQLException {
+        Properties properties = new Properties();
+        properties.setProperty("open_mode", "1"); // SQLITE_OPEN_READONLY
+        return DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath(), properties);
     }
 
     /**
@@ -178,7 +471,37 @@ public class SqliteMerge {
      * @return The ID of a matched record if one is found. Otherwise, null.
      * @throws SQLException
      */
-    public static String findMatch(ResultSet secondaryRecords, Table t) throws SQLException {
+    public String findMatch(ResultSet secondaryRecords, Table t) throws SQLException {
+        return findMatch(prepareTarget(matchQuery(t).toString()), secondaryRecords, t);
+    }
+
+    /**
+     * Find the key of a record that matches the current record, using an already prepared match query.
+     * @param stmtTargetMatch The match query for this table, prepared on any connection to the target.
+     * @param secondaryRecords Records from the secondary database.
+     * @param t The table being processed.
+     * @return The ID of a matched record if one is found. Otherwise, null.
+     * @throws SQLException
+     */
+    public String findMatch(PreparedStatement stmtTargetMatch, ResultSet secondaryRecords, Table t) throws SQLException {
+        // bind the parameters
+        for (int i = 0; i < t.gids.size(); i++) {
+            stmtTargetMatch.setString(i + 1, secondaryRecords.getString(t.gids.get(i).getActualField()));
+        }
+        ResultSet rsTargetMatch = stmtTargetMatch.executeQuery();
+
+        if (rsTargetMatch.next()) {
+            return rsTargetMatch.getString(t.skey);
+        }
+        return null;
+    }
+
+    /**
+     * Build the query that finds a matching record in the target, with one parameter per GID.
+     * @param t The table being processed.
+     * @return The query.
+     */
+    static SimpleQuery matchQuery(Table t) {
         SimpleQuery sqTargetMatch = new SimpleQuery("SELECT ", "FROM " + t.name, "WHERE");
 
         // we need the pseudokey for mapping
@@ -197,15 +520,11 @@ public class SqliteMerge {
             sqTargetMatch.select += ", " + gidDiff.getActualField();
         }
 
-        // store the where values for binding later
-        String[] gidValues = new String[t.gids.size()];
-        for (int i = 0; i < t.gids.size(); i++) {
-            Field gid = t.gids.get(i);
+        for (Field gid : t.gids) {
             if (!sqTargetMatch.where.equals("WHERE")) {
                 sqTargetMatch.where += " AND";
             }
             sqTargetMatch.where += " " + gid.getActualField() + "=?";
-            gidValues[i] = secondaryRecords.getString(gid.getActualField());
             if (gid.foreignField != null) {
                 // we have to perform a join to look up the gid
                 Reference r = t.getReference(gid.localField);
@@ -214,17 +533,67 @@ public class SqliteMerge {
             }
         }
 
-        // prepare the statement and bind the parameters
-        PreparedStatement stmtTargetMatch = targetConnection.prepareStatement(sqTargetMatch.toString());
-        for (int i = 0; i < gidValues.length; i++) {
-            stmtTargetMatch.setString(i + 1, gidValues[i]);
+        return sqTargetMatch;
+    }
+
+    /**
+     * Read the GIDs of every target record into memory, so records can be matched without a query each.
+     * Values are compared as text, so this assumes the GID columns use the default collation.
+     * @param t The table being processed.
+     * @return The pseudokey of the first target record with each combination of GID values.
+     * @throws SQLException
+     */
+    public HashMap<String, String> hashTargetGids(Table t) throws SQLException {
+        HashMap<String, String> targetGids = new HashMap<String, String>();
+        Statement stmtTargetGids = targetConnection.createStatement();
+        try {
+            ResultSet rsTargetGids = stmtTargetGids.executeQuery(hashQuery(t).toString());
+            while (rsTargetGids.next()) {
+                String gidKey = gidKey(rsTargetGids, t);
+                if (gidKey != null && !targetGids.containsKey(gidKey)) {
+                    targetGids.put(gidKey, rsTargetGids.getString(t.skey));
+                }
+            }
+        } finally {
+            stmtTargetGids.close();
         }
-        ResultSet rsTargetMatch = stmtTargetMatch.executeQuery();
+        return targetGids;
+    }
 
-        if (rsTargetMatch.next()) {
-            return rsTargetMatch.getString(t.skey);
+    /**
+     * Build the query that reads the GIDs of every target record for hashing.
+     * @param t The table being processed.
+     * @return The query.
+     */
+    static SimpleQuery hashQuery(Table t) {
+        // the same joins and columns as a match, without the restriction, plus the local gids to hash on
+        SimpleQuery sqTargetGids = matchQuery(t);
+        sqTargetGids.where = "";
+        for (Field gid : t.gids) {
+            if (gid.foreignField == null) {
+                sqTargetGids.select += ", " + t.name + "." + gid.localField;
+            }
         }
-        return null;
+        return sqTargetGids;
+    }
+
+    /**
+     * Combine the GID values of a record into one key.
+     * @param records The record, from either database.
+     * @param t The table being processed.
+     * @return The key, or null if a GID is null, since null never matches.
+     * @throws SQLException
+     */
+    public String gidKey(ResultSet records, Table t) throws SQLException {
+        StringBuilder key = new StringBuilder();
+        for (Field gid : t.gids) {
+            String value = records.getString(gid.getActualField());
+            if (value == null) {
+                return null;
+            }
+            key.append(value.length()).append(':').append(value);
+        }
+        return key.toString();
     }
 
     /**
@@ -234,22 +603,13 @@ public class SqliteMerge {
      * @param t The table being processed.
      * @throws SQLException
      */
-    public static void updateRecord(ResultSet secondaryRecords, String matchedKey, Table t) throws SQLException {
+    public void updateRecord(ResultSet secondaryRecords, String matchedKey, Table t) throws SQLException {
         keyMap.get(t.name).put(secondaryRecords.getString(t.skey), matchedKey);
 
         // get all the fields for the match and joined tables, used for updating the record if it's old
-        SimpleQuery sqMatchDetails = new SimpleQuery("SELECT *", "FROM " + t.name, "WHERE " + t.skey + "=?");
+        SimpleQuery sqMatchDetails = matchDetailsQuery(t);
 
-        for (int i = 0; i < t.gids.size(); i++) {
-            Field gid = t.gids.get(i);
-            if (gid.foreignField != null) {
-                // we have to perform a join to look up the gid
-                Reference r = t.getReference(gid.localField);
-                sqMatchDetails.join += " INNER JOIN " + r.table + " USING (" + r.field + ")";
-            }
-        }
-
-        PreparedStatement stmtMatchDetails = targetConnection.prepareStatement(sqMatchDetails.toString());
+        PreparedStatement stmtMatchDetails = prepareTarget(sqMatchDetails.toString());
         stmtMatchDetails.setString(1, matchedKey);
         ResultSet rsMatchDetails = stmtMatchDetails.executeQuery();
         rsMatchDetails.next();
@@ -276,11 +636,11 @@ public class SqliteMerge {
         if (matchGidDate == null || secondaryGidDate.after(matchGidDate)) {
             // delete the dependents
             for (Reference dependent : t.dependents) {
-                SimpleQuery sqDeleteDependent = new SimpleQuery("DELETE", "FROM " + dependent.table, "WHERE " + dependent.field + "=?");
-                PreparedStatement stmtDeleteDependent = targetConnection.prepareStatement(sqDeleteDependent.toString());
+                SimpleQuery sqDeleteDependent = deleteDependentQuery(dependent);
+                PreparedStatement stmtDeleteDependent = prepareTarget(sqDeleteDependent.toString());
                 stmtDeleteDependent.setString(1, rsMatchDetails.getString(dependent.field));
                 stmtDeleteDependent.executeUpdate();
-                System.out.println(".. Deleted dependents in " + dependent.table + " on " + dependent.field);
+                out.println(".. Deleted dependents in " + dependent.table + " on " + dependent.field);
             }
 
             String gidDiffSignature = null;
@@ -288,7 +648,7 @@ public class SqliteMerge {
                 gidDiffSignature = t.gidDiffs.get(1).getActualField();
             }
             if (updateFields(secondaryRecords, rsMatchDetails, gidDiffSignature, t.gidUpdates.keySet(), matchedKey, t)) {
-                System.out.println(".. Updated GID fields");
+                out.println(".. Updated GID fields");
             }
         }
 
@@ -298,10 +658,39 @@ public class SqliteMerge {
             localDiffDate = t.gidDiffs.get(0).getActualField();
         }
         if (updateFields(secondaryRecords, rsMatchDetails, localDiffDate, t.localUpdates.keySet(), matchedKey, t)) {
-            System.out.println(".. Updated local fields");
+            out.println(".. Updated local fields");
         }
     }
 
+    /**
+     * Build the query for all the fields of a matched record and its joined tables.
+     * @param t The table being processed.
+     * @return The query, with the matched pseudokey as its parameter.
+     */
+    static SimpleQuery matchDetailsQuery(Table t) {
+        SimpleQuery sqMatchDetails = new SimpleQuery("SELECT *", "FROM " + t.name, "WHERE " + t.skey + "=?");
+
+        for (int i = 0; i < t.gids.size(); i++) {
+            Field gid = t.gids.get(i);
+            if (gid.foreignField != null) {
+                // we have to perform a join to look up the gid
+                Reference r = t.getReference(gid.localField);
+                sqMatchDetails.join += " INNER JOIN " + r.table + " USING (" + r.field + ")";
+            }
+        }
+
+        return sqMatchDetails;
+    }
+
+    /**
+     * Build the statement that deletes the dependents of a record that is about to be updated.
+     * @param dependent The dependent table and the field that refers to the record.
+     * @return The statement, with the referenced value as its parameter.
+     */
+    static SimpleQuery deleteDependentQuery(Reference dependent) {
+        return new SimpleQuery("DELETE", "FROM " + dependent.table, "WHERE " + dependent.field + "=?");
+    }
+
     /**
      * Update the fields of the matched record using the secondary record if it is newer.
      * @param secondaryRecords Records from the secondary database.
@@ -313,7 +702,7 @@ public class SqliteMerge {
      * @return True if the fields were updated. Otherwise, false.
      * @throws SQLException
      */
-    public static boolean updateFields(ResultSet secondaryRecords, ResultSet matchDetails, String diffField, Set<String> fields, String matchedKey, Table t) throws SQLException {
+    public boolean updateFields(ResultSet secondaryRecords, ResultSet matchDetails, String diffField, Set<String> fields, String matchedKey, Table t) throws SQLException {
         // try to find the diff fields, using null if there is none, or if the table doesn't contain it
         String secondaryDiff = null;
         String matchDiff = null;
@@ -344,7 +733,7 @@ public class SqliteMerge {
             }
             // only execute the update if we found some fields to update
             if (suUpdateGidFields.set != "SET") {
-                PreparedStatement stmtUpdateGidFields = targetConnection.prepareStatement(suUpdateGidFields.toString());
+                PreparedStatement stmtUpdateGidFields = prepareTarget(suUpdateGidFields.toString());
                 for (int i = 0; i < values.size(); i++) {
                     stmtUpdateGidFields.setString(i+1, values.get(i));
                 }
@@ -363,7 +752,7 @@ public class SqliteMerge {
      * @param t The table being processed.
      * @throws SQLException
      */
-    public static void insertRecord(ResultSet secondaryRecords, int newSkey, Table t) throws SQLException {
+    public void insertRecord(ResultSet secondaryRecords, int newSkey, Table t) throws SQLException {
         ArrayList<String> values = new ArrayList<String>();
         SimpleInsert siInsertRecord = new SimpleInsert("INSERT INTO " + t.name, "(" + t.skey, "VALUES (?");
 
@@ -400,7 +789,7 @@ public class SqliteMerge {
         siInsertRecord.fields += ")";
         siInsertRecord.values += ")";
 
-        PreparedStatement stmtInsertRecord = targetConnection.prepareStatement(siInsertRecord.toString(), PreparedStatement.RETURN_GENERATED_KEYS);
+        PreparedStatement stmtInsertRecord = prepareTarget(siInsertRecord.toString(), Statement.RETURN_GENERATED_KEYS);
         // the new pseudokey is the first param
         stmtInsertRecord.setInt(1, newSkey);
         // the gids makes up the rest of the params
@@ -412,15 +801,59 @@ public class SqliteMerge {
         ResultSet rsInsertRecordKey = stmtInsertRecord.getGeneratedKeys();
         rsInsertRecordKey.next();
         keyMap.get(t.name).put(secondaryRecords.getString(t.skey), rsInsertRecordKey.getString(1));
-        System.out.println(".. Created record " + rsInsertRecordKey.getInt(1));
+        out.println(".. Created record " + rsInsertRecordKey.getInt(1));
+    }
+
+    /**
+     * Matches one rowid range of the secondary table on its own connections.
+     */
+    private class PartitionMatch implements Callable<HashMap<Long, String>> {
+        Table t;
+        long firstRowid;
+        long lastRowid;
+
+        public PartitionMatch(Table t, long firstRowid, long lastRowid) {
+            this.t = t;
+            this.firstRowid = firstRowid;
+            this.lastRowid = lastRowid;
+        }
+
+        public HashMap<Long, String> call() throws SQLException {
+            HashMap<Long, String> matches = new HashMap<Long, String>();
+            Connection partitionSecondary = openReadOnly(secondaryFile);
+            Connection partitionTarget = null;
+            try {
+                partitionTarget = openReadOnly(targetFile);
+
+                PreparedStatement stmtPartition = partitionSecondary.prepareStatement(partitionQuery(t).toString());
+                stmtPartition.setLong(1, firstRowid);
+                stmtPartition.setLong(2, lastRowid);
+                ResultSet rsPartition = stmtPartition.executeQuery();
+
+                PreparedStatement stmtTargetMatch = partitionTarget.prepareStatement(matchQuery(t).toString());
+                while (rsPartition.next()) {
+                    String matchedKey = findMatch(stmtTargetMatch, rsPartition, t);
+                    if (matchedKey != null) {
+                        matches.put(rsPartition.getLong(MERGE_ROWID), matchedKey);
+                    }
+                }
+            } finally {
+                partitionSecondary.close();
+                if (partitionTarget != null) {
+                    partitionTarget.close();
+                }
+            }
+            return matches;
+        }
     }
 
-    private static class SimpleQuery {
+    static class SimpleQuery {
         public String select = "";
         public String from = "";
         public String join = "";
         public String where = "";
         public String having = "";
+        public String orderBy = "";
 
         public SimpleQuery(String select, String from, String where) {
             this.select = select;
@@ -429,7 +862,7 @@ public class SqliteMerge {
         }
 
         public String toString() {
-            return select + " " + from + " " + join + " " + where + " " + having;
+            return select + " " + from + " " + join + " " + where + " " + having + " " + orderBy;
         }
     }
 
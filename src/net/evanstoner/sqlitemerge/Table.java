@@ -36,6 +36,9 @@ public class Table {
     // instance fields
     public ArrayList<String> instanceFields = new ArrayList<String>();
 
+    // optional strategy override, e.g. "hash transaction"; chosen automatically if null
+    public String strategy = null;
+
     public Table(String configEntry)  {
         String[] headerAndContents = configEntry.split("\\:");
 
@@ -91,6 +94,11 @@ public class Table {
 
         // updates 2
         localUpdates = mapOfRefernces(lines[5]);
+
+        // strategy override
+        if (lines.length > 6 && lines[6].trim().length() > 0) {
+            strategy = lines[6].trim();
+        }
     }
 
     private ArrayList<Field> listOfFields(String line) {
@@ -146,6 +154,10 @@ public class Table {
 
         s += "Pseudokey: " + skey + "\n";
 
+        if (strategy != null) {
+            s += "Strategy: " + strategy + "\n";
+        }
+
         s += "Global identifiers:\n";
         for (Field f : gids) {
             s += " - " + f + "\n";
@@ -0,0 +1,487 @@
+package net.evanstoner.sqlitemerge;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * How a table is merged: how secondary records are matched against the target, and how the writes are
+ * committed. The plan is chosen from table statistics unless the config overrides it.
+ */
+
+public class TablePlan {
+    // look up each secondary record with its own query on the target
+    public static final String MATCH_ROW = "row";
+    // read the target's global identifiers into memory once, then match without querying
+    public static final String MATCH_HASH = "hash";
+
+    // every write commits on its own
+    public static final String WRITE_AUTOCOMMIT = "autocommit";
+    // the whole table is written in one transaction
+    public static final String WRITE_TRANSACTION = "transaction";
+
+    // a per-row query costs about this many row visits before it reads anything
+    static final double ROW_QUERY_OVERHEAD = 20;
+
+    // below this many secondary records, committing each write is cheap enough
+    static final long TRANSACTION_MIN_ROWS = 100;
+
+    // a rough size of one hashed GID in memory, for estimating the size of the hash
+    static final long HASH_BYTES_PER_ROW = 200;
+
+    // the share of the heap one hash, or one table's partition matches, may take; the daemon runs several
+    // merges in the same JVM, so running out of memory would fail all of them
+    static final long HASH_HEAP_FRACTION = 8;
+
+    // a rough size of one partition match in memory; every matched secondary rowid is kept until it's applied
+    static final long PARTITION_BYTES_PER_ROW = 100;
+
+    // with this few secondary records, matching each one costs little, so the target isn't even counted
+    static final long SMALL_SECONDARY_ROWS = 100;
+
+    // how many target rows to sample when the GID cardinality isn't in sqlite_stat1
+    static final int CARDINALITY_SAMPLE = 1000;
+
+    public String match = null;
+    public String write = null;
+
+    // how many rowid ranges of the secondary table are matched in parallel; only for row matching
+    public int partitions = 1;
+
+    // why the plan was chosen
+    public String reason = "";
+
+    // problems with the override in the config, for the merge's own log
+    public ArrayList<String> warnings = new ArrayList<String>();
+
+    // statistics; targetRows is -1 if the target wasn't counted
+    public long secondaryRows = 0;
+    public long targetRows = -1;
+    public boolean gidIndexed = false;
+    public double rowsPerGid = 1;
+
+    /**
+     * Collect statistics for a table and choose the cheapest plan, honoring any override in the config.
+     * @param target The target connection.
+     * @param secondary The secondary connection.
+     * @param t The table being processed.
+     * @return The plan.
+     * @throws SQLException
+     */
+    public static TablePlan choose(Connection target, Connection secondary, Table t) throws SQLException {
+        TablePlan plan = new TablePlan();
+
+        // the config may fix either half of the plan
+        if (t.strategy != null) {
+            for (String token : t.strategy.split("\\s+")) {
+                if (token.equals(MATCH_ROW) || token.equals(MATCH_HASH)) {
+                    plan.match = token;
+                } else if (token.equals(WRITE_AUTOCOMMIT) || token.equals(WRITE_TRANSACTION)) {
+                    plan.write = token;
+                } else if (token.equals("parallel")) {
+                    plan.partitions = Runtime.getRuntime().availableProcessors();
+                } else if (token.startsWith("parallel=")) {
+                    try {
+                        plan.partitions = Math.max(1, Integer.parseInt(token.substring("parallel=".length())));
+                    } catch (NumberFormatException e) {
+                        plan.warnings.add("Bad partition count for " + t.name + ": " + token);
+                    }
+                } else {
+                    plan.warnings.add("Unknown strategy for " + t.name + ": " + token);
+                }
+            }
+        }
+
+        plan.secondaryRows = countRows(secondary, t.name);
+
+        String hashProblem = null;
+        if (plan.match == null && t.gids.size() > 0 && plan.secondaryRows > SMALL_SECONDARY_ROWS) {
+            hashProblem = hashProblem(target, secondary, t);
+        }
+
+        if (plan.match != null) {
+            plan.reason += "match set in config";
+        } else if (t.gids.size() == 0) {
+            plan.match = MATCH_ROW;
+            plan.reason += "no global identifiers to hash";
+        } else if (plan.secondaryRows <= SMALL_SECONDARY_ROWS) {
+            plan.match = MATCH_ROW;
+            plan.reason += "only " + plan.secondaryRows + " secondary records to look up";
+        } else if (hashProblem != null) {
+            // hashing compares values as text, which would change which records match
+            plan.match = MATCH_ROW;
+            plan.reason += "not hashing, since " + hashProblem;
+        } else {
+            plan.targetRows = countRows(target, t.name);
+            // one indexed GID is enough to search on; the rest are checked against what it finds
+            for (Field gid : t.gids) {
+                if (isGidIndexed(target, t, gid)) {
+                    plan.gidIndexed = true;
+                    break;
+                }
+            }
+            if (t.gids.get(0).foreignField == null) {
+                plan.rowsPerGid = rowsPerValue(target, t.name, t.gids.get(0).localField);
+            }
+
+            double lookup = plan.gidIndexed
+                    ? log2(plan.targetRows + 1) + plan.rowsPerGid
+                    : plan.targetRows;
+            double rowCost = plan.secondaryRows * (ROW_QUERY_OVERHEAD + lookup) / plan.partitions;
+            double hashCost = plan.targetRows + plan.secondaryRows;
+            long hashBytes = (plan.targetRows + plan.secondaryRows) * HASH_BYTES_PER_ROW;
+            long hashLimit = Runtime.getRuntime().maxMemory() / HASH_HEAP_FRACTION;
+            plan.match = rowCost <= hashCost ? MATCH_ROW : MATCH_HASH;
+            plan.reason += String.format("%d secondary x %s lookup in %d target (%.0f) vs hashing (%.0f)",
+                    plan.secondaryRows, plan.gidIndexed ? "indexed" : "unindexed", plan.targetRows, rowCost, hashCost);
+            if (plan.match.equals(MATCH_HASH) && hashBytes > hashLimit) {
+                plan.match = MATCH_ROW;
+                plan.reason += String.format("; not hashing, since it would take about %d MB of a %d MB limit",
+                        hashBytes >> 20, hashLimit >> 20);
+            }
+        }
+
+        if (plan.partitions > 1) {
+            long partitionBytes = plan.secondaryRows * PARTITION_BYTES_PER_ROW;
+            long partitionLimit = Runtime.getRuntime().maxMemory() / HASH_HEAP_FRACTION;
+            if (plan.match.equals(MATCH_ROW) && partitionBytes > partitionLimit) {
+                plan.partitions = 1;
+                plan.reason += String.format("; not partitioning, since the matches would take about %d MB of a %d MB limit",
+                        partitionBytes >> 20, partitionLimit >> 20);
+            } else if (plan.match.equals(MATCH_ROW)) {
+                plan.reason += "; matching in " + plan.partitions + " partitions";
+            } else {
+                plan.partitions = 1;
+                plan.reason += "; hashing doesn't need partitions";
+            }
+        }
+
+        if (plan.write != null) {
+            plan.reason += "; write set in config";
+        } else if (plan.secondaryRows >= TRANSACTION_MIN_ROWS) {
+            plan.write = WRITE_TRANSACTION;
+            plan.reason += "; batching " + plan.secondaryRows + " records in one transaction";
+        } else {
+            plan.write = WRITE_AUTOCOMMIT;
+            plan.reason += "; only " + plan.secondaryRows + " records to write";
+        }
+
+        return plan;
+    }
+
+    /**
+     * Count the rows in a table, using sqlite_stat1 when ANALYZE has been run.
+     * @param c The connection.
+     * @param table The table.
+     * @return The number of rows.
+     * @throws SQLException
+     */
+    static long countRows(Connection c, String table) throws SQLException {
+        // a row is only written without an index for tables that have none; every row of an index starts
+        // with the number of rows it covers, which is the whole table unless the index is partial
+        try {
+            PreparedStatement stmtStat = c.prepareStatement("SELECT stat FROM sqlite_stat1 WHERE tbl=?");
+            try {
+                stmtStat.setString(1, table);
+                ResultSet rsStat = stmtStat.executeQuery();
+                long rows = -1;
+                while (rsStat.next()) {
+                    rows = Math.max(rows, Long.parseLong(rsStat.getString(1).split(" ")[0]));
+                }
+                if (rows >= 0) {
+                    return rows;
+                }
+            } finally {
+                stmtStat.close();
+            }
+        } catch (SQLException e) {
+            // no sqlite_stat1
+        }
+
+        Statement stmt = c.createStatement();
+        try {
+            ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM " + table);
+            return rs.next() ? rs.getLong(1) : 0;
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * Estimate how many rows share each value of a column, from sqlite_stat1 or from a sample.
+     * @param c The connection.
+     * @param table The table.
+     * @param column The column.
+     * @return The average number of rows per distinct value, at least 1.
+     * @throws SQLException
+     */
+    static double rowsPerValue(Connection c, String table, String column) throws SQLException {
+        String index = findIndex(c, table, column);
+        if (index != null) {
+            String stat = queryStat(c, "SELECT stat FROM sqlite_stat1 WHERE idx=?", index);
+            if (stat != null) {
+                String[] split = stat.split(" ");
+                if (split.length > 1) {
+                    return Math.max(1, Double.parseDouble(split[1]));
+                }
+            }
+        }
+
+        Statement stmt = c.createStatement();
+        try {
+            ResultSet rs = stmt.executeQuery("SELECT COUNT(*), COUNT(DISTINCT " + column + ") FROM "
+                    + "(SELECT " + column + " FROM " + table + " LIMIT " + CARDINALITY_SAMPLE + ")");
+            if (rs.next() && rs.getLong(2) > 0) {
+                return Math.max(1, (double) rs.getLong(1) / rs.getLong(2));
+            }
+        } catch (SQLException e) {
+            // the table does not have this column
+        } finally {
+            stmt.close();
+        }
+        return 1;
+    }
+
+    /**
+     * Check whether hashing would match the same records as a query. A query compares GIDs with SQL "=",
+     * which honors the column's collation and type affinity, while the hash compares the values as text.
+     * The two agree when every GID column uses the BINARY collation and has the same INTEGER, REAL or TEXT
+     * affinity in both databases.
+     * @param target The target connection.
+     * @param secondary The secondary connection.
+     * @param t The table being processed.
+     * @return Why hashing could match differently, or null if it can't.
+     * @throws SQLException
+     */
+    static String hashProblem(Connection target, Connection secondary, Table t) throws SQLException {
+        for (Field gid : t.gids) {
+            String table = t.name;
+            if (gid.foreignField != null) {
+                Reference r = t.getReference(gid.localField);
+                if (r == null) {
+                    return gid + " has no reference";
+                }
+                table = r.table;
+            }
+            String column = gid.getActualField();
+
+            String targetAffinity = columnAffinity(target, table, column);
+            String secondaryAffinity = columnAffinity(secondary, table, column);
+            if (targetAffinity == null || !targetAffinity.equals(secondaryAffinity)) {
+                return table + "." + column + " has " + targetAffinity + " affinity in the target and "
+                        + secondaryAffinity + " in the secondary";
+            }
+            if (!(targetAffinity.equals("INTEGER") || targetAffinity.equals("REAL") || targetAffinity.equals("TEXT"))) {
+                return table + "." + column + " has " + targetAffinity + " affinity";
+            }
+
+            for (Connection c : new Connection[] { target, secondary }) {
+                String collation = columnCollation(c, table, column);
+                if (!"BINARY".equalsIgnoreCase(collation)) {
+                    return table + "." + column + " uses " + (collation == null ? "an unknown" : collation) + " collation";
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the type affinity of a column, following SQLite's rules for declared types.
+     * @return INTEGER, TEXT, BLOB, REAL or NUMERIC, or null if the column doesn't exist.
+     * @throws SQLException
+     */
+    static String columnAffinity(Connection c, String table, String column) throws SQLException {
+        Statement stmt = c.createStatement();
+        try {
+            ResultSet rs = stmt.executeQuery("PRAGMA table_info(" + table + ")");
+            while (rs.next()) {
+                if (column.equalsIgnoreCase(rs.getString("name"))) {
+                    String type = rs.getString("type") == null ? "" : rs.getString("type").toUpperCase();
+                    if (type.contains("INT")) {
+                        return "INTEGER";
+                    } else if (type.contains("CHAR") || type.contains("CLOB") || type.contains("TEXT")) {
+                        return "TEXT";
+                    } else if (type.contains("BLOB") || type.length() == 0) {
+                        return "BLOB";
+                    } else if (type.contains("REAL") || type.contains("FLOA") || type.contains("DOUB")) {
+                        return "REAL";
+                    }
+                    return "NUMERIC";
+                }
+            }
+        } finally {
+            stmt.close();
+        }
+        if (column.equalsIgnoreCase("rowid")) {
+            return "INTEGER";
+        }
+        return null;
+    }
+
+    /**
+     * Get the collation of a column from the table's CREATE statement.
+     * @return The collation, BINARY if none is declared, or null if the column can't be found.
+     * @throws SQLException
+     */
+    static String columnCollation(Connection c, String table, String column) throws SQLException {
+        if (column.equalsIgnoreCase("rowid")) {
+            return "BINARY";
+        }
+
+        String sql = null;
+        PreparedStatement stmt = c.prepareStatement("SELECT sql FROM sqlite_master WHERE type='table' AND name=? COLLATE NOCASE");
+        try {
+            stmt.setString(1, table);
+            ResultSet rs = stmt.executeQuery();
+            if (rs.next()) {
+                sql = rs.getString(1);
+            }
+        } finally {
+            stmt.close();
+        }
+        if (sql == null || sql.indexOf('(') < 0) {
+            return null;
+        }
+
+        // split the column definitions on the commas that aren't inside parentheses or quotes
+        String body = sql.substring(sql.indexOf('(') + 1, sql.lastIndexOf(')'));
+        ArrayList<String> definitions = new ArrayList<String>();
+        int depth = 0;
+        char quote = 0;
+        int start = 0;
+        for (int i = 0; i < body.length(); i++) {
+            char ch = body.charAt(i);
+            if (quote != 0) {
+                if (ch == quote) {
+                    quote = 0;
+                }
+            } else if (ch == '\'' || ch == '"' || ch == '`') {
+                quote = ch;
+            } else if (ch == '[') {
+                quote = ']';
+            } else if (ch == '(') {
+                depth++;
+            } else if (ch == ')') {
+                depth--;
+            } else if (ch == ',' && depth == 0) {
+                definitions.add(body.substring(start, i));
+                start = i + 1;
+            }
+        }
+        definitions.add(body.substring(start));
+
+        for (String definition : definitions) {
+            String[] words = definition.trim().split("\\s+", 2);
+            String name = words[0].replaceAll("^[\"`\\[]|[\"`\\]]$", "");
+            if (name.equalsIgnoreCase(column)) {
+                Matcher m = Pattern.compile("(?i)\\bCOLLATE\\s+[\"`\\[']?(\\w+)").matcher(definition);
+                return m.find() ? m.group(1).toUpperCase() : "BINARY";
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Check whether a GID can be looked up through indexes. A foreign GID also needs its join column indexed.
+     * @param c The target connection.
+     * @param t The table being processed.
+     * @param gid The global identifier.
+     * @return True if every table the lookup touches has an index on the column it's searched by.
+     * @throws SQLException
+     */
+    static boolean isGidIndexed(Connection c, Table t, Field gid) throws SQLException {
+        if (gid.foreignField == null) {
+            return isIndexed(c, t.name, gid.localField);
+        }
+        Reference r = t.getReference(gid.localField);
+        if (r == null) {
+            return false;
+        }
+        return isIndexed(c, r.table, gid.foreignField) && isIndexed(c, t.name, r.field);
+    }
+
+    static boolean isIndexed(Connection c, String table, String column) throws SQLException {
+        return column.equalsIgnoreCase("rowid") || isRowidAlias(c, table, column) || findIndex(c, table, column) != null;
+    }
+
+    /**
+     * An INTEGER PRIMARY KEY column is the rowid, so it's searchable without appearing in index_list.
+     */
+    static boolean isRowidAlias(Connection c, String table, String column) throws SQLException {
+        Statement stmt = c.createStatement();
+        try {
+            ResultSet rs = stmt.executeQuery("PRAGMA table_info(" + table + ")");
+            while (rs.next()) {
+                if (column.equalsIgnoreCase(rs.getString("name"))) {
+                    return rs.getInt("pk") == 1 && "INTEGER".equalsIgnoreCase(rs.getString("type"));
+                }
+            }
+        } finally {
+            stmt.close();
+        }
+        return false;
+    }
+
+    /**
+     * Find an index whose leftmost column is the given column.
+     * @param c The connection.
+     * @param table The table.
+     * @param column The column.
+     * @return The name of the index, or null if there is none.
+     * @throws SQLException
+     */
+    static String findIndex(Connection c, String table, String column) throws SQLException {
+        Statement stmt = c.createStatement();
+        try {
+            ResultSet rsIndexes = stmt.executeQuery("PRAGMA index_list(" + table + ")");
+            ArrayList<String> indexes = new ArrayList<String>();
+            while (rsIndexes.next()) {
+                indexes.add(rsIndexes.getString("name"));
+            }
+            for (String index : indexes) {
+                ResultSet rsColumns = stmt.executeQuery("PRAGMA index_info(" + index + ")");
+                while (rsColumns.next()) {
+                    if (rsColumns.getInt("seqno") == 0 && column.equalsIgnoreCase(rsColumns.getString("name"))) {
+                        return index;
+                    }
+                }
+            }
+        } finally {
+            stmt.close();
+        }
+        return null;
+    }
+
+    /**
+     * Read a row from sqlite_stat1, which only exists once ANALYZE has been run.
+     * @return The stat column, or null if there isn't one.
+     */
+    static String queryStat(Connection c, String sql, String value) {
+        try {
+            PreparedStatement stmt = c.prepareStatement(sql);
+            try {
+                stmt.setString(1, value);
+                ResultSet rs = stmt.executeQuery();
+                return rs.next() ? rs.getString(1) : null;
+            } finally {
+                stmt.close();
+            }
+        } catch (SQLException e) {
+            // no sqlite_stat1
+            return null;
+        }
+    }
+
+    static double log2(double x) {
+        return Math.log(x) / Math.log(2);
+    }
+
+    public String toString() {
+        return match + " match" + (partitions > 1 ? " x" + partitions : "") + ", " + write + " writes (" + reason + ")";
+    }
+}